@@ -0,0 +1,36 @@
+package net.pincette.rs.multipart;
+
+import static java.nio.ByteBuffer.allocate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last buffer of a body, so that the next body can reuse it. This is only done when the
+ * subscriber has consumed the last slice that was published from it, because the slices share the
+ * buffer.
+ *
+ * @author Werner Donné
+ */
+class BodyBuffers {
+  private static final int SIZE = 0xffff;
+
+  private ByteBuffer buffer;
+  private ByteBuffer lastSlice;
+
+  ByteBuffer get() {
+    final ByteBuffer result =
+        buffer != null && (lastSlice == null || !lastSlice.hasRemaining())
+            ? buffer.clear()
+            : allocate(SIZE);
+
+    buffer = null;
+    lastSlice = null;
+
+    return result;
+  }
+
+  void release(final ByteBuffer buffer, final ByteBuffer lastSlice) {
+    this.buffer = buffer;
+    this.lastSlice = lastSlice;
+  }
+}
@@ -2,13 +2,29 @@ package net.pincette.rs.multipart;
 
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Flow.Publisher;
 
 /**
  * Represents a MIME multipart body part.
  *
+ * <p>When the body part comes from a <code>MultipartDecoder</code>, the decoder may reuse the
+ * memory of a body buffer for a later body part once all of its bytes have been read. A subscriber
+ * that wants to keep a buffer after reading it, for example to read it again after <code>rewind
+ * </code>, should copy it.
+ *
  * @param headers the headers of the body part.
  * @param body the body of the body part as a Reactive Streams publisher.
+ * @param digests the digests of the body, which are available when the body is complete. This is
+ *     <code>null</code> when no digests were configured in the decoder. It completes exceptionally
+ *     when the stream fails, is cancelled or ends in the middle of the body.
  * @author Werner Donné
  */
-public record BodyPart(Map<String, String[]> headers, Publisher<ByteBuffer> body) {}
+public record BodyPart(
+    Map<String, String[]> headers,
+    Publisher<ByteBuffer> body,
+    CompletionStage<Digests> digests) {
+  public BodyPart(final Map<String, String[]> headers, final Publisher<ByteBuffer> body) {
+    this(headers, body, null);
+  }
+}
@@ -1,21 +1,53 @@
 package net.pincette.rs.multipart;
 
-import static java.nio.ByteBuffer.allocate;
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Flow.Publisher;
+import java.util.function.BooleanSupplier;
 import net.pincette.rs.DequePublisher;
 
 /**
  * @author Werner Donné
  */
 class BodyRecorder implements Recorder {
+  private final BodyBuffers buffers;
+  private final BooleanSupplier demand;
+  private final Digests digests;
+  private final CompletableFuture<Digests> digestsFuture;
+  private final FlushPolicy flushPolicy;
   private final DequePublisher<ByteBuffer> publisher = new DequePublisher<>();
   private ByteBuffer buffer;
   private boolean complete;
+  private long expected;
+  private ByteBuffer lastSlice;
+  private long since;
+  private int start;
+
+  BodyRecorder(
+      final BodyBuffers buffers,
+      final Digests digests,
+      final FlushPolicy flushPolicy,
+      final BooleanSupplier demand,
+      final long expected) {
+    this.buffers = buffers;
+    this.digests = digests;
+    this.flushPolicy = flushPolicy;
+    this.demand = demand;
+    this.expected = expected;
+    digestsFuture = digests != null ? new CompletableFuture<>() : null;
+  }
 
   public void bufferDepleted() {
-    newBuffer();
+    if (buffer != null
+        && buffer.position() > start
+        && flushPolicy.flush(
+            buffer.position() - start, nanoTime() - since, demand.getAsBoolean())) {
+      publishBuffer();
+    }
   }
 
   private boolean canWrite() {
@@ -25,9 +57,56 @@ class BodyRecorder implements Recorder {
   public void commit() {
     complete = true;
     publishBuffer();
+
+    if (buffer != null) {
+      buffers.release(buffer, lastSlice);
+      buffer = null;
+    }
+
+    if (digestsFuture != null) {
+      digestsFuture.complete(digests);
+    }
+
     publisher.close();
   }
 
+  public int copy(final ByteBuffer input) {
+    if (expected <= 0) {
+      return 0;
+    }
+
+    prepareWrite();
+
+    final int from = input.position();
+    final int max = (int) min(expected, min(input.remaining(), buffer.remaining()));
+    int length = 0;
+
+    // A carriage return may start the delimiter, so the state machine should look at it.
+    while (length < max && input.get(from + length) != (byte) '\r') {
+      ++length;
+    }
+
+    if (length > 0) {
+      buffer.put(buffer.position(), input, from, length);
+      buffer.position(buffer.position() + length);
+      input.position(from + length);
+      expected -= length;
+    }
+
+    return length;
+  }
+
+  CompletionStage<Digests> digests() {
+    return digestsFuture;
+  }
+
+  /** Completes the digests exceptionally when the body can't be completed anymore. */
+  void fail(final Throwable throwable) {
+    if (digestsFuture != null) {
+      digestsFuture.completeExceptionally(throwable);
+    }
+  }
+
   public boolean isCloseDelimiter() {
     return false;
   }
@@ -37,26 +116,43 @@ class BodyRecorder implements Recorder {
   }
 
   public boolean next(final byte b) {
-    if (!canWrite()) {
-      newBuffer();
-    }
-
+    prepareWrite();
     buffer.put(b);
+    --expected;
 
     return true;
   }
 
   private void newBuffer() {
     publishBuffer();
-    buffer = allocate(0xffff);
+    buffer = buffers.get();
+    lastSlice = null;
+    start = 0;
+  }
+
+  private void prepareWrite() {
+    if (!canWrite()) {
+      newBuffer();
+    }
+
+    if (buffer.position() == start) {
+      since = nanoTime();
+    }
   }
 
   private void publishBuffer() {
-    if (buffer != null) {
-      buffer.limit(buffer.position());
-      buffer.position(0);
-      publisher.getDeque().addFirst(buffer);
-      buffer = null;
+    if (buffer != null && buffer.position() > start) {
+      final int length = buffer.position() - start;
+
+      if (digests != null) {
+        // The bytes are still in the cache.
+        digests.update(buffer.array(), start, length);
+      }
+
+      // The published slices share the buffer, which is only written beyond them.
+      lastSlice = buffer.slice(start, length);
+      publisher.getDeque().addFirst(lastSlice);
+      start = buffer.position();
     }
   }
 
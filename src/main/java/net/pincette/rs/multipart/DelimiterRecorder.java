@@ -17,11 +17,23 @@ class DelimiterRecorder implements Recorder {
   private int position;
 
   DelimiterRecorder(final String boundary) {
-    this.boundary = ("\r\n--" + boundary + "\r\n").getBytes(US_ASCII);
-    closingBoundary = ("\r\n--" + boundary + "--").getBytes(US_ASCII);
+    this(boundary(boundary), closingBoundary(boundary));
+  }
+
+  DelimiterRecorder(final byte[] boundary, final byte[] closingBoundary) {
+    this.boundary = boundary;
+    this.closingBoundary = closingBoundary;
     buffer = new byte[2 * closingBoundary.length]; // Give some room for padding but not too much.
   }
 
+  static byte[] boundary(final String boundary) {
+    return ("\r\n--" + boundary + "\r\n").getBytes(US_ASCII);
+  }
+
+  static byte[] closingBoundary(final String boundary) {
+    return ("\r\n--" + boundary + "--").getBytes(US_ASCII);
+  }
+
   private static boolean isLineEnd(final byte b) {
     return b == (byte) '\r' || b == (byte) '\n';
   }
@@ -38,6 +50,10 @@ class DelimiterRecorder implements Recorder {
     // Nothing to do.
   }
 
+  public int copy(final ByteBuffer buffer) {
+    return 0;
+  }
+
   public boolean isCloseDelimiter() {
     return position == closingBoundary.length
         && Arrays.equals(closingBoundary, 0, closingBoundary.length, buffer, 0, position);
@@ -68,6 +84,12 @@ class DelimiterRecorder implements Recorder {
         || b == closingBoundary[boundaryPosition - 1];
   }
 
+  void reset() {
+    boundaryPosition = 0;
+    inPadding = false;
+    position = 0;
+  }
+
   public ByteBuffer rollback() {
     return ByteBuffer.wrap(buffer, 0, position);
   }
@@ -0,0 +1,20 @@
+package net.pincette.rs.multipart;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.zip.Checksum;
+
+/**
+ * The message digests and checksums that were updated with the bytes of a body part while it was
+ * decoded.
+ *
+ * @param messageDigests the message digests, in the order they were configured.
+ * @param checksums the checksums, in the order they were configured.
+ * @author Werner Donné
+ */
+public record Digests(List<MessageDigest> messageDigests, List<Checksum> checksums) {
+  void update(final byte[] bytes, final int offset, final int length) {
+    messageDigests.forEach(d -> d.update(bytes, offset, length));
+    checksums.forEach(c -> c.update(bytes, offset, length));
+  }
+}
@@ -3,6 +3,8 @@ package net.pincette.rs.multipart;
 import java.nio.ByteBuffer;
 
 class DiscardRecorder implements Recorder {
+  static final DiscardRecorder DISCARD = new DiscardRecorder();
+
   public void bufferDepleted() {
     // Not interested.
   }
@@ -11,6 +13,10 @@ class DiscardRecorder implements Recorder {
     // Nothing to do.
   }
 
+  public int copy(final ByteBuffer buffer) {
+    return 0;
+  }
+
   public boolean isCloseDelimiter() {
     return false;
   }
@@ -0,0 +1,93 @@
+package net.pincette.rs.multipart;
+
+/**
+ * Decides if the bytes of a body that have been collected so far should be emitted when the
+ * decoder has exhausted an incoming buffer. Otherwise, they are emitted only when the internal
+ * buffer of 64KiB is full or the body is complete. The policies can be combined with the
+ * <code>and</code> and <code>or</code> methods.
+ *
+ * @author Werner Donné
+ */
+@FunctionalInterface
+public interface FlushPolicy {
+  /**
+   * Emits the collected bytes only when the internal buffer is full. This is the default.
+   *
+   * @return The policy.
+   */
+  static FlushPolicy full() {
+    return (bytes, age, demand) -> false;
+  }
+
+  /**
+   * Emits the collected bytes every time an incoming buffer is exhausted.
+   *
+   * @return The policy.
+   */
+  static FlushPolicy depleted() {
+    return (bytes, age, demand) -> true;
+  }
+
+  /**
+   * Emits the collected bytes when an incoming buffer is exhausted and the subscriber of the body
+   * is waiting for more.
+   *
+   * @return The policy.
+   */
+  static FlushPolicy demand() {
+    return (bytes, age, demand) -> demand;
+  }
+
+  /**
+   * Emits the collected bytes when an incoming buffer is exhausted and there are at least a number
+   * of them.
+   *
+   * @param threshold the minimum number of bytes.
+   * @return The policy.
+   */
+  static FlushPolicy bytes(final int threshold) {
+    return (bytes, age, demand) -> bytes >= threshold;
+  }
+
+  /**
+   * Emits the collected bytes when an incoming buffer is exhausted and the oldest byte was
+   * collected at least some time ago. The decoder doesn't run a timer, so bytes are never emitted
+   * between incoming buffers.
+   *
+   * @param nanos the minimum age in nanoseconds.
+   * @return The policy.
+   */
+  static FlushPolicy time(final long nanos) {
+    return (bytes, age, demand) -> age >= nanos;
+  }
+
+  /**
+   * Combines this policy with another one.
+   *
+   * @param other the other policy.
+   * @return The policy that emits the collected bytes when both policies agree.
+   */
+  default FlushPolicy and(final FlushPolicy other) {
+    return (bytes, age, demand) -> flush(bytes, age, demand) && other.flush(bytes, age, demand);
+  }
+
+  /**
+   * Decides if the collected bytes should be emitted.
+   *
+   * @param bytes the number of collected bytes, which is always positive.
+   * @param age the number of nanoseconds since the first collected byte.
+   * @param demand tells if the subscriber of the body has requested more buffers.
+   * @return Whether to emit the bytes.
+   */
+  boolean flush(int bytes, long age, boolean demand);
+
+  /**
+   * Combines this policy with another one.
+   *
+   * @param other the other policy.
+   * @return The policy that emits the collected bytes when one of the policies does.
+   */
+  default FlushPolicy or(final FlushPolicy other) {
+    return (bytes, age, demand) -> flush(bytes, age, demand) || other.flush(bytes, age, demand);
+  }
+}
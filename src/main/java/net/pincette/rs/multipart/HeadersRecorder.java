@@ -1,5 +1,6 @@
 package net.pincette.rs.multipart;
 
+import static java.lang.Long.parseLong;
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.stream;
@@ -25,12 +26,39 @@ class HeadersRecorder implements Recorder {
 
   private final byte[] buffer = new byte[0xffff];
   private final Consumer<Map<String, String[]>> onCommit;
+  private long contentLength = -1;
   private int position;
 
   HeadersRecorder(final Consumer<Map<String, String[]>> onCommit) {
     this.onCommit = onCommit;
   }
 
+  private static long contentLength(final Map<String, String[]> headers) {
+    return headers.entrySet().stream()
+        .filter(e -> e.getKey().equalsIgnoreCase("Content-Length"))
+        .map(Map.Entry::getValue)
+        .filter(v -> v.length == 1 && isLength(v[0]))
+        .mapToLong(v -> parseLong(v[0]))
+        .findFirst()
+        .orElse(-1);
+  }
+
+  private static boolean isLength(final String value) {
+    return !value.isEmpty()
+        && value.length() < 19
+        && value.chars().allMatch(c -> c >= '0' && c <= '9');
+  }
+
+  static Map<String, String[]> parseHeaders(
+      final byte[] bytes, final int offset, final int length) {
+    return new BufferedReader(
+            new InputStreamReader(new ByteArrayInputStream(bytes, offset, length), UTF_8))
+        .lines()
+        .map(HeadersRecorder::splitLine)
+        .filter(Objects::nonNull)
+        .collect(toMap(pair -> pair.first, pair -> pair.second, Array::append));
+  }
+
   private static Pair<String, String[]> splitLine(final String line) {
     final int index = line.indexOf(':');
 
@@ -46,7 +74,18 @@ class HeadersRecorder implements Recorder {
   }
 
   public void commit() {
-    onCommit.accept(parseHeaders());
+    final Map<String, String[]> headers = parseHeaders(buffer, 0, position);
+
+    contentLength = contentLength(headers);
+    onCommit.accept(headers);
+  }
+
+  long contentLength() {
+    return contentLength;
+  }
+
+  public int copy(final ByteBuffer buffer) {
+    return 0;
   }
 
   public boolean isCloseDelimiter() {
@@ -72,16 +111,12 @@ class HeadersRecorder implements Recorder {
     return true;
   }
 
-  public ByteBuffer rollback() {
-    return null;
+  void reset() {
+    contentLength = -1;
+    position = 0;
   }
 
-  private Map<String, String[]> parseHeaders() {
-    return new BufferedReader(
-            new InputStreamReader(new ByteArrayInputStream(buffer, 0, position), UTF_8))
-        .lines()
-        .map(HeadersRecorder::splitLine)
-        .filter(Objects::nonNull)
-        .collect(toMap(pair -> pair.first, pair -> pair.second, Array::append));
+  public ByteBuffer rollback() {
+    return null;
   }
 }
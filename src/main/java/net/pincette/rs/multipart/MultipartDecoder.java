@@ -5,40 +5,91 @@ import static net.pincette.rs.Probe.probeMore;
 import static net.pincette.rs.Probe.probeValue;
 import static net.pincette.rs.Util.onCancelProcessor;
 import static net.pincette.rs.Util.onCompleteProcessor;
+import static net.pincette.rs.multipart.DelimiterRecorder.boundary;
+import static net.pincette.rs.multipart.DelimiterRecorder.closingBoundary;
+import static net.pincette.rs.multipart.DiscardRecorder.DISCARD;
 
+import java.io.EOFException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
 import net.pincette.rs.ProcessorBase;
 
 /**
  * Takes a byte stream that starts with the MIME multipart preamble and converts it in a stream of
- * MIME body parts. It also consumes the epilogue.
+ * MIME body parts. It also consumes the epilogue. A decoder can be used for another stream with the
+ * <code>reset</code> method, once the previous stream has completed or failed.
  *
+ * <p>The body parts and their bodies are emitted on the thread that calls <code>onNext</code>,
+ * unless an executor is configured with <code>withExecutor</code>.
+ *
+ * <p>The last buffer of a body is reused for the next body when its bytes have all been read, so
+ * a subscriber should copy the body buffers it wants to keep after having read them.
+ *
+ * @see MultipartPool
  * @author Werner Donné
  */
 public class MultipartDecoder extends ProcessorBase<ByteBuffer, BodyPart> {
+  private final AtomicLong bodyRequested = new AtomicLong();
+  private final BodyBuffers buffers = new BodyBuffers();
+  private final HeadersRecorder headersRecorder = new HeadersRecorder(this::onHeadersCommit);
   private final StateMachine stateMachine;
+  private byte[] boundary;
+  private byte[] closingBoundary;
+  private List<Supplier<Checksum>> checksums;
   private BodyRecorder currentBodyRecorder;
-  private HeadersRecorder currentHeadersRecorder;
+  private DelimiterRecorder delimiterRecorder;
+  private Executor executor;
+  private FlushPolicy flushPolicy = FlushPolicy.full();
+  private Executor lane;
+  private List<Supplier<MessageDigest>> messageDigests;
   private boolean bodyComplete = true;
-  private long bodyRequested;
   private boolean complete;
+  private boolean contentLength;
   private Map<String, String[]> pendingHeaders;
+  private int queueSize;
   private long requested;
 
   public MultipartDecoder(final String boundary) {
-    this.stateMachine = new StateMachine(recorders(boundary), this::more);
+    setBoundary(boundary);
+    this.stateMachine = new StateMachine(this::recorder, this::more);
   }
 
   private BodyRecorder bodyRecorder() {
     if (!ongoingBody()) {
-      currentBodyRecorder = new BodyRecorder();
+      currentBodyRecorder =
+          new BodyRecorder(
+              buffers,
+              digests(),
+              flushPolicy,
+              () -> bodyRequested.get() > 0,
+              contentLength ? headersRecorder.contentLength() : -1);
     }
 
     return currentBodyRecorder;
   }
 
+  @Override
+  public void cancel() {
+    // The terminal state is kept here instead of in the base class, so reset can clear it.
+    dispatch(
+        () -> {
+          failBody(new CancellationException("The multipart stream was cancelled"));
+
+          if (subscription != null) {
+            subscription.cancel();
+          }
+        });
+  }
+
   private void completeBody() {
     dispatch(
         () -> {
@@ -56,6 +107,23 @@ public class MultipartDecoder extends ProcessorBase<ByteBuffer, BodyPart> {
         });
   }
 
+  private DelimiterRecorder delimiterRecorder() {
+    // A rollback of the previous delimiter has always been replayed completely at this point.
+    delimiterRecorder.reset();
+
+    return delimiterRecorder;
+  }
+
+  private Digests digests() {
+    return messageDigests != null || checksums != null
+        ? new Digests(
+            messageDigests != null
+                ? messageDigests.stream().map(Supplier::get).toList()
+                : List.of(),
+            checksums != null ? checksums.stream().map(Supplier::get).toList() : List.of())
+        : null;
+  }
+
   @Override
   protected void emit(final long number) {
     dispatch(
@@ -77,27 +145,31 @@ public class MultipartDecoder extends ProcessorBase<ByteBuffer, BodyPart> {
     subscriber.onNext(
         new BodyPart(
             headers,
-            with(currentBodyRecorder.publisher())
-                .map(onCompleteProcessor(this::completeBody))
-                .map(onCancelProcessor(this::completeBody))
-                .map(
-                    probeMore(
-                        n -> {
-                          bodyRequested += n;
-                          stateMachine.resume();
-                        }))
-                .map(
-                    probeValue(
-                        v -> {
-                          --bodyRequested;
-
-                          if (bodyRequested == 0) {
-                            stateMachine.suspend();
-                          }
-                        }))
-                .get()));
-
-    currentHeadersRecorder = null;
+            offload(
+                with(currentBodyRecorder.publisher())
+                    .map(onCompleteProcessor(this::completeBody))
+                    .map(onCancelProcessor(this::completeBody))
+                    .map(
+                        probeMore(
+                            n -> {
+                              bodyRequested.addAndGet(n);
+                              dispatch(this::resumeOrSuspend);
+                            }))
+                    .map(
+                        probeValue(
+                            v -> {
+                              if (bodyRequested.decrementAndGet() == 0) {
+                                dispatch(this::resumeOrSuspend);
+                              }
+                            }))
+                    .get()),
+            currentBodyRecorder.digests()));
+  }
+
+  private void failBody(final Throwable throwable) {
+    if (ongoingBody()) {
+      currentBodyRecorder.fail(throwable);
+    }
   }
 
   private void flushPendingHeaders() {
@@ -108,17 +180,30 @@ public class MultipartDecoder extends ProcessorBase<ByteBuffer, BodyPart> {
   }
 
   private HeadersRecorder headersRecorder() {
-    if (currentHeadersRecorder == null || currentHeadersRecorder.isComplete()) {
-      currentHeadersRecorder = new HeadersRecorder(this::onHeadersCommit);
+    if (headersRecorder.isComplete()) {
+      headersRecorder.reset();
     }
 
-    return currentHeadersRecorder;
+    return headersRecorder;
   }
 
   private void more() {
     dispatch(() -> subscription.request(1));
   }
 
+  private <T> Publisher<T> offload(final Publisher<T> publisher) {
+    if (lane == null) {
+      return publisher;
+    }
+
+    // Every body has its own lane, so a part subscriber that waits for its body can't block it.
+    final Offload<T> offload = new Offload<>(new SerialExecutor(executor), queueSize);
+
+    publisher.subscribe(offload);
+
+    return offload;
+  }
+
   @Override
   public void onComplete() {
     dispatch(
@@ -130,6 +215,16 @@ public class MultipartDecoder extends ProcessorBase<ByteBuffer, BodyPart> {
           }
 
           stateMachine.complete();
+          failBody(new EOFException("The multipart stream ended in the middle of a body"));
+        });
+  }
+
+  @Override
+  public void onError(final Throwable throwable) {
+    dispatch(
+        () -> {
+          failBody(throwable);
+          subscriber.onError(throwable);
         });
   }
 
@@ -148,20 +243,149 @@ public class MultipartDecoder extends ProcessorBase<ByteBuffer, BodyPart> {
 
   @Override
   public void onNext(final ByteBuffer buffer) {
-    stateMachine.next(buffer);
+    dispatch(() -> stateMachine.next(buffer));
   }
 
   private boolean ongoingBody() {
     return currentBodyRecorder != null && !currentBodyRecorder.isComplete();
   }
 
-  private Function<States, Recorder> recorders(final String boundary) {
-    return state ->
-        switch (state) {
-          case BODY -> bodyRecorder();
-          case DELIMITER -> new DelimiterRecorder(boundary);
-          case HEADERS -> headersRecorder();
-          default -> new DiscardRecorder();
-        };
+  private Recorder recorder(final States state) {
+    return switch (state) {
+      case BODY -> bodyRecorder();
+      case DELIMITER -> delimiterRecorder();
+      case HEADERS -> headersRecorder();
+      default -> DISCARD;
+    };
+  }
+
+  /**
+   * Prepares the decoder for a new stream, which may have another boundary. The decoder should not
+   * be used by the previous stream anymore, which may have completed, failed or have been
+   * cancelled. The settings are set back to their defaults.
+   *
+   * @param boundary the boundary of the new stream.
+   * @return The decoder itself.
+   */
+  public MultipartDecoder reset(final String boundary) {
+    setBoundary(boundary);
+    currentBodyRecorder = null;
+    bodyComplete = true;
+    bodyRequested.set(0);
+    checksums = null;
+    complete = false;
+    contentLength = false;
+    executor = null;
+    flushPolicy = FlushPolicy.full();
+    lane = null;
+    messageDigests = null;
+    pendingHeaders = null;
+    queueSize = 0;
+    requested = 0;
+    headersRecorder.reset();
+    stateMachine.reset();
+    subscriber = null;
+    subscription = null;
+
+    return this;
+  }
+
+  private void resumeOrSuspend() {
+    // The demand changes on other threads, so only the latest value counts.
+    if (bodyRequested.get() > 0) {
+      stateMachine.resume();
+    } else {
+      stateMachine.suspend();
+    }
+  }
+
+  private void setBoundary(final String boundary) {
+    this.boundary = boundary(boundary);
+    closingBoundary = closingBoundary(boundary);
+    delimiterRecorder = new DelimiterRecorder(this.boundary, closingBoundary);
+  }
+
+  @Override
+  public void subscribe(final Subscriber<? super BodyPart> subscriber) {
+    if (executor != null) {
+      lane = new SerialExecutor(executor);
+
+      final Offload<BodyPart> offload = new Offload<>(lane, 1);
+
+      offload.subscribe(subscriber);
+      super.subscribe(offload);
+    } else {
+      super.subscribe(subscriber);
+    }
+  }
+
+  /**
+   * Lets the decoder copy the bodies of body parts with a <code>Content-Length</code> header in
+   * bulk, within the declared length. Only the carriage returns go through the parser, because they
+   * may start the delimiter. This is why a wrong length doesn't corrupt the stream. A body that is
+   * longer than declared is scanned after the declared length.
+   *
+   * @param contentLength whether to use the <code>Content-Length</code> header.
+   * @return The decoder itself.
+   */
+  public MultipartDecoder withContentLength(final boolean contentLength) {
+    this.contentLength = contentLength;
+
+    return this;
+  }
+
+  /**
+   * Lets the decoder update message digests and checksums with the bytes of each body part while it
+   * decodes them. The result is available through the <code>digests</code> field of the body part.
+   *
+   * @param messageDigests the suppliers of a fresh message digest for each body part. It may be
+   *     <code>null</code>.
+   * @param checksums the suppliers of a fresh checksum for each body part. It may be <code>null
+   *     </code>.
+   * @return The decoder itself.
+   */
+  public MultipartDecoder withDigests(
+      final List<Supplier<MessageDigest>> messageDigests,
+      final List<Supplier<Checksum>> checksums) {
+    this.messageDigests = messageDigests;
+    this.checksums = checksums;
+
+    return this;
+  }
+
+  /**
+   * Lets the decoder emit the body parts and their bodies through an executor, while the parsing
+   * stays on the thread that calls <code>onNext</code>. The body parts are delivered in order and
+   * so are the signals of each body, but the bodies don't wait for each other or for the body
+   * parts. This method should be called before the decoder is subscribed to.
+   *
+   * @param executor the executor.
+   * @param queueSize the maximum number of body buffers that are in flight between the parser and
+   *     the subscriber of a body. It should be strictly positive.
+   * @return The decoder itself.
+   * @throws IllegalArgumentException when the queue size is not strictly positive.
+   */
+  public MultipartDecoder withExecutor(final Executor executor, final int queueSize) {
+    if (queueSize <= 0) {
+      throw new IllegalArgumentException("The queue size must be strictly positive.");
+    }
+
+    this.executor = executor;
+    this.queueSize = queueSize;
+
+    return this;
+  }
+
+  /**
+   * Sets the policy that decides when the bytes of a body are emitted before the internal buffer
+   * of 64KiB is full. This lowers the latency for bodies that arrive slowly.
+   *
+   * @param flushPolicy the policy. The default is <code>FlushPolicy.full()</code>.
+   * @return The decoder itself.
+   */
+  public MultipartDecoder withFlushPolicy(final FlushPolicy flushPolicy) {
+    this.flushPolicy = flushPolicy;
+
+    return this;
   }
 }
@@ -4,52 +4,318 @@ import static java.lang.String.join;
 import static java.nio.ByteBuffer.wrap;
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.stream.Collectors.joining;
-import static net.pincette.rs.After.after;
-import static net.pincette.rs.Flatten.flatten;
-import static net.pincette.rs.Mapper.map;
-import static net.pincette.rs.Pipe.pipe;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.Flow.Publisher;
-import java.util.function.Function;
-import net.pincette.rs.Concat;
-import net.pincette.rs.Delegate;
-import net.pincette.rs.Source;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import net.pincette.rs.ProcessorBase;
 
 /**
- * Converts a stream of MIME multipart body parts into a byte stream.
+ * Converts a stream of MIME multipart body parts into a byte stream. An encoder can be used for
+ * another stream with the <code>reset</code> method, once the previous stream has completed or
+ * failed.
  *
+ * @see MultipartPool
  * @author Werner Donné
  */
-public class MultipartEncoder extends Delegate<BodyPart, ByteBuffer> {
+public class MultipartEncoder extends ProcessorBase<BodyPart, ByteBuffer> {
+  private final Deque<Part> parts = new ArrayDeque<>();
+  private final boolean transportPadding;
+  private long buffered;
+  private boolean cancelled;
+  private byte[] closeDelimiter;
+  private boolean closed;
+  private boolean complete;
+  private byte[] delimiter;
+  private boolean partRequested;
+  private int readAhead;
+  private long readAheadBytes;
+  private long requested;
+
   MultipartEncoder(final String boundary, final boolean transportPadding) {
-    super(
-        pipe(map(publishBodyPart(boundary, transportPadding)))
-            .then(flatten())
-            .then(
-                after(
-                    wrap(
-                        ("\r\n--" + boundary + "--" + (transportPadding ? " \t" : ""))
-                            .getBytes(US_ASCII)))));
+    this.transportPadding = transportPadding;
+    setBoundary(boundary);
   }
 
   public MultipartEncoder(final String boundary) {
     this(boundary, false);
   }
 
-  private static byte[] headers(final BodyPart bodyPart) {
-    return (bodyPart.headers().entrySet().stream()
+  static byte[] headers(final Map<String, String[]> headers) {
+    return (headers.entrySet().stream()
                 .map(e -> e.getKey() + ": " + join(",", e.getValue()))
                 .collect(joining("\r\n"))
             + "\r\n\r\n")
         .getBytes(US_ASCII);
   }
 
-  private static Function<BodyPart, Publisher<ByteBuffer>> publishBodyPart(
-      final String boundary, final boolean transportPadding) {
-    final byte[] b =
-        ("\r\n--" + boundary + (transportPadding ? " \t" : "") + "\r\n").getBytes(US_ASCII);
+  /**
+   * Cancels the upstream and all the bodies that are subscribed to, including the ones that are
+   * read ahead.
+   */
+  @Override
+  public void cancel() {
+    // The terminal state is kept here instead of in the base class, so reset can clear it.
+    dispatch(
+        () -> {
+          if (!cancelled) {
+            cancelled = true;
+            cancelParts();
+
+            if (subscription != null) {
+              subscription.cancel();
+            }
+          }
+        });
+  }
+
+  private void cancelParts() {
+    parts.forEach(Part::cancel);
+  }
+
+  private void close() {
+    closed = true;
+    send(wrap(closeDelimiter));
+    subscriber.onComplete();
+  }
+
+  @Override
+  protected void emit(final long number) {
+    dispatch(
+        () -> {
+          requested += number;
+          more();
+        });
+  }
+
+  private void fail(final Throwable throwable) {
+    if (!closed) {
+      closed = true;
+      cancelParts();
+      subscriber.onError(throwable);
+    }
+  }
+
+  private void more() {
+    if (cancelled || closed) {
+      return;
+    }
+
+    sendBuffers();
+
+    if (requested > 0 && parts.isEmpty() && complete && !closed) {
+      close();
+    }
+
+    requestBodies();
+    requestPart();
+  }
+
+  @Override
+  public void onComplete() {
+    dispatch(
+        () -> {
+          complete = true;
+          more();
+        });
+  }
+
+  @Override
+  public void onError(final Throwable throwable) {
+    dispatch(() -> fail(throwable));
+  }
+
+  @Override
+  public void onNext(final BodyPart bodyPart) {
+    dispatch(
+        () -> {
+          if (cancelled || closed) {
+            return;
+          }
+
+          final Part part = new Part(bodyPart);
+
+          partRequested = false;
+          parts.addLast(part);
+          bodyPart.body().subscribe(part);
+          more();
+        });
+  }
+
+  private void requestBodies() {
+    final Part head = parts.peekFirst();
+
+    if (head != null && requested > 0 && head.buffers.isEmpty()) {
+      head.request();
+    }
+
+    if (readAheadBytes > 0) {
+      for (final Part part : parts.toArray(Part[]::new)) {
+        if (buffered < readAheadBytes) {
+          part.request();
+        }
+      }
+    }
+  }
+
+  private void requestPart() {
+    if (!complete
+        && !partRequested
+        && parts.size() <= readAhead
+        && (requested > 0 || !parts.isEmpty())) {
+      partRequested = true;
+      subscription.request(1);
+    }
+  }
+
+  /**
+   * Prepares the encoder for a new stream, which may have another boundary. The encoder should not
+   * be used by the previous stream anymore, which may have completed, failed or have been
+   * cancelled. The read-ahead settings are set back to the default.
+   *
+   * @param boundary the boundary of the new stream.
+   * @return The encoder itself.
+   */
+  public MultipartEncoder reset(final String boundary) {
+    setBoundary(boundary);
+    cancelParts();
+    parts.clear();
+    buffered = 0;
+    cancelled = false;
+    closed = false;
+    complete = false;
+    partRequested = false;
+    readAhead = 0;
+    readAheadBytes = 0;
+    requested = 0;
+    subscriber = null;
+    subscription = null;
+
+    return this;
+  }
+
+  private void send(final ByteBuffer buffer) {
+    --requested;
+    subscriber.onNext(buffer);
+  }
+
+  private void sendBuffers() {
+    while (!parts.isEmpty()) {
+      final Part part = parts.peekFirst();
+
+      if (part.isDrained()) {
+        parts.removeFirst();
+      } else if (requested == 0) {
+        break;
+      } else if (!part.framing.isEmpty()) {
+        send(part.framing.removeFirst());
+      } else if (!part.buffers.isEmpty()) {
+        final ByteBuffer buffer = part.buffers.removeFirst();
+
+        buffered -= buffer.remaining();
+        send(buffer);
+      } else {
+        break;
+      }
+    }
+  }
+
+  private void setBoundary(final String boundary) {
+    final String padding = transportPadding ? " \t" : "";
+
+    delimiter = ("\r\n--" + boundary + padding + "\r\n").getBytes(US_ASCII);
+    closeDelimiter = ("\r\n--" + boundary + "--" + padding).getBytes(US_ASCII);
+  }
+
+  /**
+   * Lets the encoder subscribe to the bodies of the next body parts while the current one is still
+   * being sent. This hides the latency of slow body publishers at the part boundaries. The default
+   * is not to read ahead.
+   *
+   * @param parts the number of body parts after the current one that are subscribed to early.
+   * @param bytes the approximate maximum number of body bytes that are buffered.
+   * @return The encoder itself.
+   */
+  public MultipartEncoder withReadAhead(final int parts, final long bytes) {
+    readAhead = parts;
+    readAheadBytes = bytes;
+
+    return this;
+  }
+
+  private class Part implements Subscriber<ByteBuffer> {
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final Deque<ByteBuffer> framing = new ArrayDeque<>();
+    private Subscription body;
+    private boolean complete;
+    private boolean outstanding;
+
+    private Part(final BodyPart bodyPart) {
+      framing.addLast(wrap(delimiter));
+      framing.addLast(wrap(headers(bodyPart.headers())));
+    }
+
+    private void cancel() {
+      if (!complete) {
+        complete = true;
+
+        if (body != null) {
+          body.cancel();
+        }
+      }
+    }
+
+    private boolean isDrained() {
+      return complete && framing.isEmpty() && buffers.isEmpty();
+    }
+
+    public void onComplete() {
+      dispatch(
+          () -> {
+            complete = true;
+            more();
+          });
+    }
+
+    public void onError(final Throwable throwable) {
+      dispatch(
+          () -> {
+            complete = true;
+            subscription.cancel();
+            fail(throwable);
+          });
+    }
+
+    public void onNext(final ByteBuffer buffer) {
+      dispatch(
+          () -> {
+            outstanding = false;
+            buffers.addLast(buffer);
+            buffered += buffer.remaining();
+            more();
+          });
+    }
+
+    public void onSubscribe(final Subscription subscription) {
+      dispatch(
+          () -> {
+            if (complete) {
+              subscription.cancel(); // The part was cancelled before its body arrived.
+            } else {
+              body = subscription;
+              more();
+            }
+          });
+    }
 
-    return bodyPart -> Concat.of(Source.of(wrap(b), wrap(headers(bodyPart))), bodyPart.body());
+    private void request() {
+      if (body != null && !complete && !outstanding) {
+        outstanding = true;
+        body.request(1);
+      }
+    }
   }
 }
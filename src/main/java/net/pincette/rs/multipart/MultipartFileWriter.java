@@ -0,0 +1,389 @@
+package net.pincette.rs.multipart;
+
+import static java.lang.Math.min;
+import static java.nio.ByteBuffer.allocateDirect;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.function.Function;
+import net.pincette.rs.ProcessorBase;
+
+/**
+ * Writes the bodies of a stream of MIME body parts to files. The consecutive buffers of a body are
+ * collected in larger batches, which are written asynchronously. While one batch is being written
+ * the next one is filled. The processor emits the path of a body part when its body has been
+ * written completely.
+ *
+ * @author Werner Donné
+ */
+public class MultipartFileWriter extends ProcessorBase<BodyPart, Path> {
+  private static final int DEFAULT_BATCH_SIZE = 0x100000;
+
+  private final int batchSize;
+  private final Function<BodyPart, Path> pathOf;
+  private final Sync sync;
+  private ByteBuffer batch;
+  private boolean closed;
+  private boolean complete;
+  private PartWriter current;
+  private boolean partRequested;
+  private long requested;
+  private ByteBuffer spare;
+  private boolean terminated;
+
+  /**
+   * Creates a writer with batches of 1MiB and which synchronizes a file with the storage device
+   * when it has been written completely.
+   *
+   * @param pathOf the function that returns the path for a body part.
+   */
+  public MultipartFileWriter(final Function<BodyPart, Path> pathOf) {
+    this(pathOf, DEFAULT_BATCH_SIZE, Sync.ON_COMPLETE);
+  }
+
+  /**
+   * Creates a writer.
+   *
+   * @param pathOf the function that returns the path for a body part.
+   * @param batchSize the size of the batches in which a body is written.
+   * @param sync the policy for synchronizing the files with the storage device.
+   */
+  public MultipartFileWriter(
+      final Function<BodyPart, Path> pathOf, final int batchSize, final Sync sync) {
+    this.pathOf = pathOf;
+    this.batchSize = batchSize;
+    this.sync = sync;
+  }
+
+  private static void copy(final ByteBuffer from, final ByteBuffer to) {
+    final int length = min(from.remaining(), to.remaining());
+    final int limit = from.limit();
+
+    from.limit(from.position() + length);
+    to.put(from);
+    from.limit(limit);
+  }
+
+  private void abortCurrent() {
+    if (current != null) {
+      current.abort();
+      current = null;
+    }
+  }
+
+  /** Aborts the file that is being written and cancels the upstream. */
+  @Override
+  public void cancel() {
+    dispatch(
+        () -> {
+          if (!terminated) {
+            terminated = true;
+            abortCurrent();
+
+            if (subscription != null) {
+              subscription.cancel();
+            }
+          }
+        });
+  }
+
+  @Override
+  protected void emit(final long number) {
+    dispatch(
+        () -> {
+          requested += number;
+          more();
+        });
+  }
+
+  private void fail(final Throwable throwable) {
+    if (!terminated) {
+      terminated = true;
+      abortCurrent();
+      subscription.cancel();
+      subscriber.onError(throwable);
+    }
+  }
+
+  private void more() {
+    if (!terminated && current == null) {
+      if (complete) {
+        if (!closed) {
+          closed = true;
+          subscriber.onComplete();
+        }
+      } else if (requested > 0 && !partRequested) {
+        partRequested = true;
+        subscription.request(1);
+      }
+    }
+  }
+
+  @Override
+  public void onComplete() {
+    dispatch(
+        () -> {
+          complete = true;
+          more();
+        });
+  }
+
+  @Override
+  public void onError(final Throwable throwable) {
+    dispatch(() -> fail(throwable));
+  }
+
+  @Override
+  public void onNext(final BodyPart bodyPart) {
+    dispatch(
+        () -> {
+          if (terminated) {
+            return;
+          }
+
+          final Path p = pathOf.apply(bodyPart);
+
+          partRequested = false;
+
+          if (batch == null) {
+            batch = allocateDirect(batchSize);
+            spare = allocateDirect(batchSize);
+          }
+
+          try {
+            current =
+                new PartWriter(
+                    p, AsynchronousFileChannel.open(p, CREATE, TRUNCATE_EXISTING, WRITE));
+            bodyPart.body().subscribe(current);
+          } catch (IOException e) {
+            fail(e);
+          }
+        });
+  }
+
+  private void written(final Path p) {
+    current = null;
+    --requested;
+    subscriber.onNext(p);
+    more();
+  }
+
+  /** The policy for synchronizing the written files with the storage device. */
+  public enum Sync {
+    /** Leave it to the operating system. */
+    NEVER,
+
+    /** Synchronize a file when it has been written completely. */
+    ON_COMPLETE,
+
+    /** Synchronize a file after every batch that was written. */
+    ON_WRITE
+  }
+
+  private class PartWriter
+      implements CompletionHandler<Integer, ByteBuffer>, Subscriber<ByteBuffer> {
+    private final AsynchronousFileChannel channel;
+    private final Path path;
+    private boolean aborted;
+    private boolean bodyComplete;
+    private boolean outstanding;
+    private ByteBuffer pending;
+    private long position;
+    private Subscription subscription;
+    private boolean writing;
+
+    private PartWriter(final Path path, final AsynchronousFileChannel channel) {
+      this.path = path;
+      this.channel = channel;
+    }
+
+    /**
+     * Cancels the body and closes the channel. When a batch is being written the channel is closed
+     * after the write has finished.
+     */
+    private void abort() {
+      if (!aborted) {
+        aborted = true;
+        batch.clear();
+        pending = null;
+
+        if (subscription != null) {
+          subscription.cancel();
+        }
+
+        if (!writing) {
+          close();
+        }
+      }
+    }
+
+    private void accept(final ByteBuffer buffer) {
+      while (buffer.hasRemaining()) {
+        if (!batch.hasRemaining()) {
+          if (writing) {
+            pending = buffer;
+            return;
+          }
+
+          write();
+        }
+
+        copy(buffer, batch);
+      }
+
+      pending = null;
+
+      if (writing) {
+        request();
+      } else {
+        next();
+      }
+    }
+
+    private void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Already failing.
+      }
+    }
+
+    public void completed(final Integer result, final ByteBuffer buffer) {
+      dispatch(
+          () -> {
+            position += result;
+
+            if (aborted) {
+              recycle(buffer);
+              close();
+            } else if (buffer.hasRemaining()) {
+              channel.write(buffer, position, buffer, this);
+            } else {
+              try {
+                if (sync == Sync.ON_WRITE) {
+                  channel.force(false);
+                }
+
+                recycle(buffer);
+                next();
+              } catch (IOException e) {
+                failed(e, buffer);
+              }
+            }
+          });
+    }
+
+    public void failed(final Throwable exception, final ByteBuffer buffer) {
+      dispatch(
+          () -> {
+            recycle(buffer);
+
+            if (aborted) {
+              close();
+            } else {
+              fail(exception);
+            }
+          });
+    }
+
+    private void finish() {
+      try {
+        // Without anything written there is no data to force. Otherwise, this runs on the
+        // completion thread of the last write, because the last batch is only written after
+        // the body has completed.
+        if (sync == Sync.ON_COMPLETE && position > 0) {
+          channel.force(false);
+        }
+
+        channel.close();
+        written(path);
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    private void next() {
+      if (pending != null) {
+        accept(pending);
+      } else if (bodyComplete) {
+        if (batch.position() > 0) {
+          write();
+        } else {
+          finish();
+        }
+      } else {
+        request(); // A full batch is written when the next buffer arrives.
+      }
+    }
+
+    public void onComplete() {
+      dispatch(
+          () -> {
+            bodyComplete = true;
+
+            if (!aborted && !writing) {
+              next();
+            }
+          });
+    }
+
+    public void onError(final Throwable throwable) {
+      dispatch(() -> fail(throwable));
+    }
+
+    public void onNext(final ByteBuffer buffer) {
+      dispatch(
+          () -> {
+            outstanding = false;
+
+            if (!aborted) {
+              accept(buffer);
+            }
+          });
+    }
+
+    public void onSubscribe(final Subscription subscription) {
+      dispatch(
+          () -> {
+            this.subscription = subscription;
+
+            if (aborted) {
+              subscription.cancel();
+            } else {
+              request();
+            }
+          });
+    }
+
+    private void recycle(final ByteBuffer buffer) {
+      buffer.clear();
+      spare = buffer;
+      writing = false;
+    }
+
+    private void request() {
+      if (subscription != null && !bodyComplete && !outstanding && pending == null) {
+        outstanding = true;
+        subscription.request(1);
+      }
+    }
+
+    private void write() {
+      final ByteBuffer buffer = batch;
+
+      writing = true;
+      buffer.flip();
+      batch = spare;
+      spare = null;
+      channel.write(buffer, position, buffer, this);
+    }
+  }
+}
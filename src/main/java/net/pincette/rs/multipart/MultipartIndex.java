@@ -0,0 +1,286 @@
+package net.pincette.rs.multipart;
+
+import static java.lang.Math.min;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Collections.unmodifiableList;
+import static java.util.stream.IntStream.range;
+import static net.pincette.rs.multipart.HeadersRecorder.parseHeaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import net.pincette.rs.Source;
+
+/**
+ * An index of the body parts in a MIME multipart file, which is scanned only once. The file is
+ * memory-mapped, so the body parts can be accessed randomly and in parallel without reading the
+ * whole file again. The bodies of the body parts are published as slices of the mapped file.
+ *
+ * @author Werner Donné
+ */
+public class MultipartIndex {
+  private static final byte[] CLOSE = "--".getBytes(US_ASCII);
+  private static final byte[] CRLF = "\r\n".getBytes(US_ASCII);
+  private static final byte[] END = "\r\n\r\n".getBytes(US_ASCII);
+  private static final int CHUNK_SHIFT = 30;
+  private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+  private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final ByteBuffer[] chunks;
+  private final Map<String, Integer> contentIds = new HashMap<>();
+  private final List<PartRange> parts;
+  private final long size;
+
+  private MultipartIndex(final ByteBuffer[] chunks, final long size, final String boundary) {
+    this.chunks = chunks;
+    this.size = size;
+    parts = unmodifiableList(scan(("\r\n--" + boundary).getBytes(US_ASCII)));
+  }
+
+  /**
+   * Scans a MIME multipart file. It may start with the delimiter or with a preamble.
+   *
+   * @param file the file.
+   * @param boundary the boundary of the multipart body.
+   * @return The index.
+   * @throws IOException when the file can't be mapped.
+   */
+  public static MultipartIndex index(final Path file, final String boundary) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, READ)) {
+      final long size = channel.size();
+      final ByteBuffer[] chunks = new ByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT)];
+
+      for (int i = 0; i < chunks.length; ++i) {
+        final long start = (long) i << CHUNK_SHIFT;
+
+        chunks[i] = channel.map(READ_ONLY, start, min(CHUNK_SIZE, size - start));
+      }
+
+      return new MultipartIndex(chunks, size, boundary);
+    }
+  }
+
+  private static Optional<String> contentId(final Map<String, String[]> headers) {
+    return headers.entrySet().stream()
+        .filter(e -> e.getKey().equalsIgnoreCase("Content-ID") && e.getValue().length == 1)
+        .map(e -> stripBrackets(e.getValue()[0]))
+        .findFirst();
+  }
+
+  private static boolean isPadding(final byte b) {
+    return b == (byte) ' ' || b == (byte) '\t';
+  }
+
+  private static String stripBrackets(final String id) {
+    return id.length() > 1 && id.startsWith("<") && id.endsWith(">")
+        ? id.substring(1, id.length() - 1)
+        : id;
+  }
+
+  private void add(final List<PartRange> ranges, final PartRange range) {
+    final byte[] bytes = bytes(range.headersStart, range.bodyStart);
+
+    contentId(parseHeaders(bytes, 0, bytes.length))
+        .ifPresent(id -> contentIds.putIfAbsent(id, ranges.size()));
+    ranges.add(range);
+  }
+
+  private byte[] bytes(final long start, final long end) {
+    final byte[] result = new byte[(int) (end - start)];
+    int position = 0;
+
+    for (final ByteBuffer slice : slices(start, end)) {
+      final int length = slice.remaining();
+
+      slice.get(result, position, length);
+      position += length;
+    }
+
+    return result;
+  }
+
+  /**
+   * Extracts all body parts in parallel. The function is called for each body part in the pool.
+   *
+   * @param pool the pool in which the function is run.
+   * @param function the function that processes a body part.
+   * @return The results of the function in the order of the body parts.
+   * @param <T> the result type.
+   */
+  public <T> List<T> extract(final ForkJoinPool pool, final Function<BodyPart, T> function) {
+    return pool.submit(
+            () -> range(0, parts.size()).parallel().mapToObj(i -> function.apply(part(i))).toList())
+        .join();
+  }
+
+  private long find(final byte[] bytes, final long from) {
+    for (long i = from; i <= size - bytes.length; ++i) {
+      if (get(i) == bytes[0] && matches(i, bytes, 0)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private byte get(final long position) {
+    return chunks[(int) (position >>> CHUNK_SHIFT)].get((int) (position & CHUNK_MASK));
+  }
+
+  /**
+   * Returns the headers of a body part.
+   *
+   * @param index the index of the body part.
+   * @return The headers.
+   */
+  public Map<String, String[]> headers(final int index) {
+    final PartRange range = parts.get(index);
+    final byte[] bytes = bytes(range.headersStart, range.bodyStart);
+
+    return parseHeaders(bytes, 0, bytes.length);
+  }
+
+  private long headersEnd(final long headersStart) {
+    if (matches(headersStart, CRLF, 0)) {
+      return headersStart + CRLF.length; // No headers.
+    }
+
+    final long end = find(END, headersStart);
+
+    return end != -1 ? (end + END.length) : -1;
+  }
+
+  private boolean matches(final long position, final byte[] bytes, final int from) {
+    if (position < 0 || position + bytes.length - from > size) {
+      return false;
+    }
+
+    for (int i = from; i < bytes.length; ++i) {
+      if (get(position + i - from) != bytes[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns a body part.
+   *
+   * @param index the index of the body part.
+   * @return The body part, of which the body is published as slices of the mapped file.
+   */
+  public BodyPart part(final int index) {
+    final PartRange range = parts.get(index);
+
+    return new BodyPart(headers(index), Source.of(slices(range.bodyStart, range.bodyEnd)));
+  }
+
+  /**
+   * Returns the first body part with the given <code>Content-ID</code> header. The header may have
+   * the angle brackets or not.
+   *
+   * @param contentId the value of the header without the angle brackets.
+   * @return The optional body part.
+   */
+  public Optional<BodyPart> part(final String contentId) {
+    return Optional.ofNullable(contentIds.get(stripBrackets(contentId))).map(this::part);
+  }
+
+  /**
+   * Returns the locations of the body parts in the file.
+   *
+   * @return The unmodifiable list of locations.
+   */
+  public List<PartRange> parts() {
+    return parts;
+  }
+
+  private List<PartRange> scan(final byte[] delimiter) {
+    final List<PartRange> result = new ArrayList<>();
+    long bodyStart = -1;
+    boolean closed = false;
+    long headersStart = -1;
+    // Without a preamble the file may start with the delimiter without the line end.
+    long next = matches(0, delimiter, CRLF.length) ? -CRLF.length : find(delimiter, 0);
+
+    while (next != -1 && !closed) {
+      final long position = next + delimiter.length;
+
+      closed = matches(position, CLOSE, 0);
+
+      final long end = skipPadding(position);
+
+      if (closed || matches(end, CRLF, 0)) {
+        if (headersStart != -1) {
+          add(result, new PartRange(headersStart, bodyStart, next));
+        }
+
+        if (!closed) {
+          headersStart = end + CRLF.length;
+          bodyStart = headersEnd(headersStart);
+
+          if (bodyStart == -1) {
+            headersStart = -1;
+            next = -1;
+          } else {
+            next = find(delimiter, bodyStart);
+          }
+        }
+      } else {
+        next = find(delimiter, next + 1);
+      }
+    }
+
+    if (!closed && headersStart != -1) {
+      add(result, new PartRange(headersStart, bodyStart, size)); // Missing close delimiter.
+    }
+
+    return result;
+  }
+
+  private long skipPadding(final long position) {
+    long result = position;
+
+    while (result < size && isPadding(get(result))) {
+      ++result;
+    }
+
+    return result;
+  }
+
+  private List<ByteBuffer> slices(final long start, final long end) {
+    final List<ByteBuffer> result = new ArrayList<>();
+    long position = start;
+
+    while (position < end) {
+      final int offset = (int) (position & CHUNK_MASK);
+      final int length = (int) min(end - position, CHUNK_SIZE - offset);
+
+      result.add(chunks[(int) (position >>> CHUNK_SHIFT)].slice(offset, length));
+      position += length;
+    }
+
+    return result;
+  }
+
+  /**
+   * The location of a body part in the file.
+   *
+   * @param headersStart the position of the first byte of the headers.
+   * @param bodyStart the position of the first byte of the body, which is also the end of the
+   *     headers.
+   * @param bodyEnd the position after the last byte of the body.
+   */
+  public record PartRange(long headersStart, long bodyStart, long bodyEnd) {}
+}
@@ -0,0 +1,90 @@
+package net.pincette.rs.multipart;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of decoders and encoders. A decoder or encoder that is obtained from the pool
+ * should be given back with one of the <code>release</code> methods after its stream has completed
+ * or failed. After that it shouldn't be used anymore by the caller. A decoder or encoder from the
+ * pool always has the default settings.
+ *
+ * @author Werner Donné
+ */
+public class MultipartPool {
+  private final Deque<MultipartDecoder> decoders = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger decodersSize = new AtomicInteger();
+  private final Deque<MultipartEncoder> encoders = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger encodersSize = new AtomicInteger();
+  private final int maximumSize;
+
+  /**
+   * Creates a pool.
+   *
+   * @param maximumSize the maximum number of decoders and encoders each that are kept in the pool.
+   */
+  public MultipartPool(final int maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  private static <T> T acquire(final Deque<T> pool, final AtomicInteger size) {
+    final T result = pool.pollFirst();
+
+    if (result != null) {
+      size.decrementAndGet();
+    }
+
+    return result;
+  }
+
+  private <T> void release(final Deque<T> pool, final AtomicInteger size, final T object) {
+    if (size.incrementAndGet() <= maximumSize) {
+      pool.addFirst(object);
+    } else {
+      size.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns a decoder from the pool or a new one if the pool is empty.
+   *
+   * @param boundary the boundary of the stream.
+   * @return The decoder.
+   */
+  public MultipartDecoder decoder(final String boundary) {
+    final MultipartDecoder decoder = acquire(decoders, decodersSize);
+
+    return decoder != null ? decoder.reset(boundary) : new MultipartDecoder(boundary);
+  }
+
+  /**
+   * Returns an encoder from the pool or a new one if the pool is empty.
+   *
+   * @param boundary the boundary of the stream.
+   * @return The encoder.
+   */
+  public MultipartEncoder encoder(final String boundary) {
+    final MultipartEncoder encoder = acquire(encoders, encodersSize);
+
+    return encoder != null ? encoder.reset(boundary) : new MultipartEncoder(boundary);
+  }
+
+  /**
+   * Gives a decoder back to the pool.
+   *
+   * @param decoder the decoder.
+   */
+  public void release(final MultipartDecoder decoder) {
+    release(decoders, decodersSize, decoder);
+  }
+
+  /**
+   * Gives an encoder back to the pool.
+   *
+   * @param encoder the encoder.
+   */
+  public void release(final MultipartEncoder encoder) {
+    release(encoders, encodersSize, encoder);
+  }
+}
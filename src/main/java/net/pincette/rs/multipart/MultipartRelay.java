@@ -0,0 +1,156 @@
+package net.pincette.rs.multipart;
+
+import static java.nio.ByteBuffer.wrap;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static net.pincette.rs.multipart.DelimiterRecorder.boundary;
+import static net.pincette.rs.multipart.DelimiterRecorder.closingBoundary;
+import static net.pincette.rs.multipart.DiscardRecorder.DISCARD;
+import static net.pincette.rs.multipart.MultipartEncoder.headers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import net.pincette.rs.ProcessorBase;
+
+/**
+ * Takes a MIME multipart byte stream and produces another one in which the headers of the body
+ * parts may be changed. The bodies are not copied, but forwarded as slices of the incoming buffers.
+ * Only the delimiters, which may have another boundary, and the headers are generated. The
+ * preamble and the epilogue are dropped.
+ *
+ * @author Werner Donné
+ */
+public class MultipartRelay extends ProcessorBase<ByteBuffer, ByteBuffer> {
+  private final byte[] boundary;
+  private final byte[] closingBoundary;
+  private final byte[] closeDelimiter;
+  private final byte[] delimiter;
+  private final HeadersRecorder headersRecorder = new HeadersRecorder(this::onHeadersCommit);
+  private final Deque<ByteBuffer> output = new ArrayDeque<>();
+  private final StateMachine stateMachine;
+  private final UnaryOperator<Map<String, String[]>> transform;
+  private boolean closeDelimiterSent;
+  private boolean closed;
+  private boolean complete;
+  private boolean inputNeeded = true;
+  private long requested;
+
+  /**
+   * Creates a relay that keeps the boundary.
+   *
+   * @param boundary the boundary of the incoming stream.
+   * @param transform the function that receives the headers of a body part and returns the headers
+   *     that are forwarded.
+   */
+  public MultipartRelay(
+      final String boundary, final UnaryOperator<Map<String, String[]>> transform) {
+    this(boundary, boundary, transform);
+  }
+
+  /**
+   * Creates a relay.
+   *
+   * @param boundary the boundary of the incoming stream.
+   * @param newBoundary the boundary of the outgoing stream.
+   * @param transform the function that receives the headers of a body part and returns the headers
+   *     that are forwarded.
+   */
+  public MultipartRelay(
+      final String boundary,
+      final String newBoundary,
+      final UnaryOperator<Map<String, String[]>> transform) {
+    this.boundary = boundary(boundary);
+    this.closingBoundary = closingBoundary(boundary);
+    this.transform = transform;
+    delimiter = ("\r\n--" + newBoundary + "\r\n").getBytes(US_ASCII);
+    closeDelimiter = ("\r\n--" + newBoundary + "--").getBytes(US_ASCII);
+    stateMachine = new StateMachine(this::recorder, () -> inputNeeded = true);
+  }
+
+  private void close() {
+    if (!closeDelimiterSent) {
+      closeDelimiterSent = true;
+      output.addLast(wrap(closeDelimiter));
+    }
+  }
+
+  @Override
+  protected void emit(final long number) {
+    dispatch(
+        () -> {
+          requested += number;
+          flush();
+        });
+  }
+
+  private void flush() {
+    while (requested > 0 && !output.isEmpty()) {
+      --requested;
+      subscriber.onNext(output.removeFirst());
+    }
+
+    if (output.isEmpty()) {
+      if (complete) {
+        if (!closed) {
+          closed = true;
+          subscriber.onComplete();
+        }
+      } else if (inputNeeded && requested > 0) {
+        inputNeeded = false;
+        subscription.request(1);
+      }
+    }
+  }
+
+  private HeadersRecorder headersRecorder() {
+    if (headersRecorder.isComplete()) {
+      headersRecorder.reset();
+    }
+
+    return headersRecorder;
+  }
+
+  @Override
+  public void onComplete() {
+    dispatch(
+        () -> {
+          stateMachine.complete();
+
+          if (stateMachine.isClosed()) {
+            close(); // The stream may end right after the close delimiter.
+          }
+
+          complete = true;
+          flush();
+        });
+  }
+
+  private void onHeadersCommit(final Map<String, String[]> headers) {
+    output.addLast(wrap(delimiter));
+    output.addLast(wrap(headers(transform.apply(headers))));
+  }
+
+  @Override
+  public void onNext(final ByteBuffer buffer) {
+    dispatch(
+        () -> {
+          stateMachine.next(buffer);
+          flush();
+        });
+  }
+
+  private Recorder recorder(final States state) {
+    return switch (state) {
+      case BODY -> new SliceRecorder(stateMachine, output::addLast);
+      case DELIMITER -> new DelimiterRecorder(boundary, closingBoundary);
+      case EPILOGUE -> {
+        close();
+        yield DISCARD;
+      }
+      case HEADERS -> headersRecorder();
+      default -> DISCARD;
+    };
+  }
+}
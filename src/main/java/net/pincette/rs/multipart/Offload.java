@@ -0,0 +1,128 @@
+package net.pincette.rs.multipart;
+
+import static java.lang.Math.min;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow.Processor;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+
+/**
+ * Delivers the signals to its subscriber through an executor, which should run them in order. It
+ * never has more elements in flight than what the subscriber has requested, with a maximum of the
+ * given capacity.
+ *
+ * @author Werner Donné
+ */
+class Offload<T> implements Processor<T, T>, Subscription {
+  private final long capacity;
+  private final Executor executor;
+  private long demand;
+  private long outstanding;
+  private long queued;
+  private boolean started;
+  private Subscriber<? super T> subscriber;
+  private Subscription subscription;
+
+  Offload(final Executor executor, final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be strictly positive.");
+    }
+
+    this.executor = executor;
+    this.capacity = capacity;
+  }
+
+  public void cancel() {
+    subscription.cancel();
+  }
+
+  private void more() {
+    final long number;
+
+    synchronized (this) {
+      number = min(demand, capacity) - outstanding - queued;
+
+      if (number > 0) {
+        outstanding += number;
+      }
+    }
+
+    if (number > 0) {
+      subscription.request(number);
+    }
+  }
+
+  public void onComplete() {
+    executor.execute(() -> subscriber.onComplete());
+  }
+
+  public void onError(final Throwable throwable) {
+    executor.execute(() -> subscriber.onError(throwable));
+  }
+
+  public void onNext(final T value) {
+    synchronized (this) {
+      --outstanding;
+      ++queued;
+    }
+
+    executor.execute(
+        () -> {
+          synchronized (this) {
+            --queued;
+            --demand;
+          }
+
+          subscriber.onNext(value);
+          more();
+        });
+  }
+
+  public void onSubscribe(final Subscription subscription) {
+    synchronized (this) {
+      this.subscription = subscription;
+    }
+
+    start();
+  }
+
+  public void request(final long number) {
+    if (number <= 0) {
+      subscription.cancel();
+      onError(new IllegalArgumentException("A request must be strictly positive."));
+
+      return;
+    }
+
+    synchronized (this) {
+      demand = demand + number < 0 ? Long.MAX_VALUE : (demand + number);
+    }
+
+    more();
+  }
+
+  private void start() {
+    final boolean ready;
+
+    synchronized (this) {
+      ready = !started && subscriber != null && subscription != null;
+
+      if (ready) {
+        started = true;
+      }
+    }
+
+    if (ready) {
+      executor.execute(() -> subscriber.onSubscribe(this));
+    }
+  }
+
+  public void subscribe(final Subscriber<? super T> subscriber) {
+    synchronized (this) {
+      this.subscriber = subscriber;
+    }
+
+    start();
+  }
+}
@@ -10,6 +10,8 @@ interface Recorder {
 
   void commit();
 
+  int copy(ByteBuffer buffer);
+
   boolean isCloseDelimiter();
 
   boolean isComplete();
@@ -0,0 +1,47 @@
+package net.pincette.rs.multipart;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one after the other in the order they were submitted, using another executor. A task
+ * that fails doesn't stop the others. Its exception goes to the uncaught exception handler of the
+ * thread.
+ *
+ * @author Werner Donné
+ */
+class SerialExecutor implements Executor {
+  private final Executor executor;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  SerialExecutor(final Executor executor) {
+    this.executor = executor;
+  }
+
+  private static void run(final Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      final Thread thread = Thread.currentThread();
+
+      thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+  }
+
+  private void drain() {
+    do {
+      run(tasks.remove());
+    } while (pending.decrementAndGet() != 0);
+  }
+
+  public void execute(final Runnable task) {
+    tasks.add(task);
+
+    if (pending.getAndIncrement() == 0) {
+      executor.execute(this::drain);
+    }
+  }
+}
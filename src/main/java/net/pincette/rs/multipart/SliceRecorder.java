@@ -0,0 +1,96 @@
+package net.pincette.rs.multipart;
+
+import static java.nio.ByteBuffer.wrap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Records a body as slices of the input buffers of the state machine. Only bytes that are replayed
+ * after a rollback are copied.
+ *
+ * @author Werner Donné
+ */
+class SliceRecorder implements Recorder {
+  private final Consumer<ByteBuffer> emit;
+  private final ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+  private final StateMachine stateMachine;
+  private boolean complete;
+  private ByteBuffer input;
+  private int length;
+  private int start;
+
+  SliceRecorder(final StateMachine stateMachine, final Consumer<ByteBuffer> emit) {
+    this.stateMachine = stateMachine;
+    this.emit = emit;
+  }
+
+  public void bufferDepleted() {
+    flush();
+  }
+
+  public void commit() {
+    complete = true;
+    flush();
+  }
+
+  public int copy(final ByteBuffer buffer) {
+    return 0;
+  }
+
+  private void flush() {
+    flushSlice();
+    flushReplayed();
+  }
+
+  private void flushReplayed() {
+    if (replayed.size() > 0) {
+      emit.accept(wrap(replayed.toByteArray()));
+      replayed.reset();
+    }
+  }
+
+  private void flushSlice() {
+    if (length > 0) {
+      emit.accept(input.slice(start, length));
+      length = 0;
+    }
+  }
+
+  public boolean isCloseDelimiter() {
+    return false;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+
+  public boolean next(final byte b) {
+    if (stateMachine.isReplaying()) {
+      flushSlice();
+      replayed.write(b);
+    } else {
+      final ByteBuffer buffer = stateMachine.input();
+
+      flushReplayed();
+
+      if (buffer != input) {
+        flushSlice();
+        input = buffer;
+      }
+
+      if (length == 0) {
+        start = buffer.position() - 1;
+      }
+
+      ++length;
+    }
+
+    return true;
+  }
+
+  public ByteBuffer rollback() {
+    return null;
+  }
+}
@@ -30,6 +30,7 @@ class StateMachine {
   private Recorder previousRecorder;
   private States previousState;
   private Recorder recorder;
+  private boolean replaying;
   private ByteBuffer rolledback;
   private States state = PREAMBLE;
   private boolean suspended;
@@ -46,9 +47,13 @@ class StateMachine {
 
   private void consume() {
     while (hasEnough()) {
+      if (state == BODY && !isRollingBack() && recorder.copy(buffer) > 0) {
+        continue;
+      }
+
       final byte b = getByte();
 
-      if (rolledback == null || !rolledback.hasRemaining()) {
+      if (!isRollingBack()) {
         // The last one may be the start of a new state.
         newState(b);
       }
@@ -58,16 +63,25 @@ class StateMachine {
       }
     }
 
+    recorder.bufferDepleted();
+
+    if (previousRecorder != null) {
+      previousRecorder.bufferDepleted();
+    }
+
     if (!suspended) {
       more.run();
     }
   }
 
   private byte getByte() {
-    if (rolledback != null && rolledback.hasRemaining()) {
+    if (isRollingBack()) {
+      replaying = true;
+
       return rolledback.get();
     }
 
+    replaying = false;
     rolledback = null;
 
     return buffer.get();
@@ -83,6 +97,26 @@ class StateMachine {
     return buffer != null && buffer.hasRemaining();
   }
 
+  ByteBuffer input() {
+    return buffer;
+  }
+
+  /** Tells if the close delimiter has been recognised, even when nothing followed it. */
+  boolean isClosed() {
+    return state == CLOSE
+        || state == EPILOGUE
+        || (state == DELIMITER && recorder.isComplete() && recorder.isCloseDelimiter());
+  }
+
+  /** Tells if the last byte came from a rollback instead of the input buffer. */
+  boolean isReplaying() {
+    return replaying;
+  }
+
+  private boolean isRollingBack() {
+    return rolledback != null && rolledback.hasRemaining();
+  }
+
   void next(final ByteBuffer buffer) {
     if (hasEnough()) {
       throw new IllegalStateException("State machine is full");
@@ -115,6 +149,17 @@ class StateMachine {
     previousRecorder = null;
   }
 
+  void reset() {
+    buffer = null;
+    previousRecorder = null;
+    previousState = null;
+    replaying = false;
+    rolledback = null;
+    state = PREAMBLE;
+    suspended = false;
+    recorder = getRecorder.apply(state);
+  }
+
   void resume() {
     if (suspended) {
       more.run();
@@ -1,6 +1,11 @@
 package net.pincette.rs.multipart;
 
+import static java.lang.System.currentTimeMillis;
+import static java.lang.Thread.currentThread;
+import static java.lang.Thread.sleep;
+import static java.nio.ByteBuffer.allocate;
 import static java.nio.ByteBuffer.wrap;
+import static java.nio.channels.Channels.newChannel;
 import static java.nio.channels.FileChannel.open;
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.file.StandardOpenOption.CREATE;
@@ -9,6 +14,11 @@ import static java.nio.file.StandardOpenOption.SYNC;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.Objects.deepEquals;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.ConcurrentHashMap.newKeySet;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.ForkJoinPool.commonPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static net.pincette.io.StreamConnector.copy;
 import static net.pincette.rs.Chain.with;
 import static net.pincette.rs.ReadableByteChannelPublisher.readableByteChannel;
@@ -22,16 +32,41 @@ import static net.pincette.util.StreamUtil.rangeInclusive;
 import static net.pincette.util.Util.tryToDoRethrow;
 import static net.pincette.util.Util.tryToGetRethrow;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
 import net.pincette.rs.Source;
+import net.pincette.rs.multipart.MultipartFileWriter.Sync;
 import net.pincette.util.Pair;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -43,6 +78,25 @@ class TestMultipart {
           pair("Header1", new String[] {"Value"}),
           pair("Header2", new String[] {"Value1", "Value2"}));
 
+  private static ByteBuffer append(final ByteArrayOutputStream out, final ByteBuffer buffer) {
+    final ByteBuffer duplicate = buffer.duplicate();
+    final byte[] bytes = new byte[duplicate.remaining()];
+
+    duplicate.get(bytes);
+    out.writeBytes(bytes);
+
+    return buffer;
+  }
+
+  private static void await(final BooleanSupplier condition) {
+    final long deadline = currentTimeMillis() + 10000;
+
+    while (!condition.getAsBoolean()) {
+      assertTrue(currentTimeMillis() < deadline);
+      tryToDoRethrow(() -> sleep(10));
+    }
+  }
+
   private static BodyPart bodyPart(final File file, final int bufferSize) {
     return tryToGetRethrow(
             () ->
@@ -52,6 +106,36 @@ class TestMultipart {
         .orElse(null);
   }
 
+  private static BodyPart bodyPart(final File file, final long contentLength) {
+    final BodyPart bodyPart = bodyPart(file, 1024);
+
+    return new BodyPart(
+        put(bodyPart.headers(), "Content-Length", new String[] {String.valueOf(contentLength)}),
+        bodyPart.body());
+  }
+
+  private static BodyPart bodyPart(final File file, final String contentId) {
+    final BodyPart bodyPart = bodyPart(file, 1024);
+
+    return new BodyPart(
+        put(bodyPart.headers(), "Content-ID", new String[] {"<" + contentId + ">"}),
+        bodyPart.body());
+  }
+
+  private static BodyRecorder bodyRecorder(final long expected) {
+    return new BodyRecorder(new BodyBuffers(), null, FlushPolicy.full(), () -> true, expected);
+  }
+
+  private static void checkDigests(final BodyPart bodyPart) {
+    final Digests digests = bodyPart.digests().toCompletableFuture().join();
+    final byte[] content = read(new File(bodyPart.headers().get("Filename")[0]));
+    final CRC32C crc = new CRC32C();
+
+    crc.update(content);
+    assertArrayEquals(sha256().digest(content), digests.messageDigests().get(0).digest());
+    assertEquals(crc.getValue(), digests.checksums().get(0).getValue());
+  }
+
   private static void checkHeaders(final List<Map<String, String[]>> headers) {
     headers.forEach(h -> assertTrue(equals(HEADERS, remove(h, "Filename"))));
   }
@@ -72,6 +156,28 @@ class TestMultipart {
     return file;
   }
 
+  private static Throwable digestsFailure(final Publisher<ByteBuffer> multipart) {
+    final List<BodyPart> parts = new CopyOnWriteArrayList<>();
+
+    with(multipart)
+        .map(new MultipartDecoder(BOUNDARY).withDigests(List.of(TestMultipart::sha256), null))
+        .map(
+            bodyPart -> {
+              parts.add(bodyPart);
+              bodyPart.body().subscribe(new Collect<>(Long.MAX_VALUE));
+
+              return bodyPart;
+            })
+        .get()
+        .subscribe(new Collect<>(Long.MAX_VALUE));
+    await(() -> !parts.isEmpty());
+
+    return assertThrows(
+            CompletionException.class,
+            () -> parts.get(0).digests().toCompletableFuture().orTimeout(10, SECONDS).join())
+        .getCause();
+  }
+
   private static boolean equals(final Map<String, String[]> m1, final Map<String, String[]> m2) {
     return m1 != null
         && m2 != null
@@ -79,6 +185,26 @@ class TestMultipart {
         && m1.entrySet().stream().allMatch(e -> deepEquals(e.getValue(), m2.get(e.getKey())));
   }
 
+  private static <T> Publisher<T> failing(final T value) {
+    return subscriber ->
+        subscriber.onSubscribe(
+            new Subscription() {
+              private boolean done;
+
+              public void cancel() {
+                done = true;
+              }
+
+              public void request(final long n) {
+                if (!done) {
+                  done = true;
+                  subscriber.onNext(value);
+                  subscriber.onError(new IOException("Failing publisher"));
+                }
+              }
+            });
+  }
+
   private static List<Pair<File, File>> files() {
     return rangeInclusive(1, 4)
         .map(i -> copyResource("/file" + i))
@@ -86,10 +212,34 @@ class TestMultipart {
         .toList();
   }
 
+  private static long lengthError(final int index) {
+    return switch (index) {
+      case 1 -> -10; // Too short.
+      case 2 -> 10; // Too long.
+      default -> 0;
+    };
+  }
+
+  private static ByteBuffer multipart(final String... bodies) {
+    final StringBuilder builder = new StringBuilder();
+
+    for (final String body : bodies) {
+      builder.append("\r\n--").append(BOUNDARY).append("\r\nHeader: value\r\n\r\n").append(body);
+    }
+
+    builder.append("\r\n--").append(BOUNDARY).append("--");
+
+    return wrap(builder.toString().getBytes(US_ASCII));
+  }
+
   private static File outFile(final File inFile) {
     return new File(inFile.getAbsolutePath() + ".out");
   }
 
+  private static Path outPath(final BodyPart bodyPart) {
+    return new File(bodyPart.headers().get("Filename")[0]).toPath();
+  }
+
   private static byte[] read(final File file) {
     final ByteArrayOutputStream out = new ByteArrayOutputStream();
 
@@ -98,6 +248,21 @@ class TestMultipart {
     return out.toByteArray();
   }
 
+  private static MessageDigest sha256() {
+    return tryToGetRethrow(() -> MessageDigest.getInstance("SHA-256")).orElse(null);
+  }
+
+  private static String recorded(final BodyRecorder recorder) {
+    final Collect<ByteBuffer> body = new Collect<>(Long.MAX_VALUE);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    recorder.commit();
+    recorder.publisher().subscribe(body);
+    body.result.join().forEach(buffer -> append(out, buffer));
+
+    return out.toString(US_ASCII);
+  }
+
   private static void removeFiles(final List<Pair<File, File>> files) {
     files.forEach(
         pair -> {
@@ -106,7 +271,55 @@ class TestMultipart {
         });
   }
 
+  private static ByteBuffer write(final FileChannel channel, final ByteBuffer buffer) {
+    tryToDoRethrow(() -> channel.write(buffer));
+
+    return buffer;
+  }
+
+  private static Map<String, String[]> writeBody(final BodyPart bodyPart) {
+    tryToDoRethrow(
+        () -> {
+          try (FileChannel channel = open(outPath(bodyPart), CREATE, WRITE)) {
+            join(with(bodyPart.body()).map(buffer -> write(channel, buffer)).get());
+          }
+        });
+
+    return bodyPart.headers();
+  }
+
+  private static void writeFile(final Path path, final List<ByteBuffer> buffers) {
+    tryToDoRethrow(
+        () -> {
+          try (FileChannel channel = open(path, CREATE, WRITE)) {
+            buffers.forEach(buffer -> write(channel, buffer));
+          }
+        });
+  }
+
   private void test(final int bufferSize, final byte[] extra, final boolean transportPadding) {
+    test(
+        bufferSize,
+        extra,
+        new MultipartEncoder(BOUNDARY, transportPadding),
+        new MultipartDecoder(BOUNDARY));
+  }
+
+  private void test(
+      final int bufferSize,
+      final byte[] extra,
+      final MultipartEncoder encoder,
+      final MultipartDecoder decoder) {
+    test(bufferSize, extra, encoder, decoder, bodyPart -> {});
+  }
+
+  private void test(
+      final int bufferSize,
+      final byte[] extra,
+      final MultipartEncoder encoder,
+      final MultipartDecoder decoder,
+      final Consumer<BodyPart> checkBodyPart) {
+    final List<BodyPart> bodyParts = new ArrayList<>();
     final List<Pair<File, File>> files = files();
     final List<Map<String, String[]>> headers = new ArrayList<>();
 
@@ -117,12 +330,13 @@ class TestMultipart {
                       .map(pair -> pair.first)
                       .map(file -> bodyPart(file, bufferSize))
                       .toList()))
-              .map(new MultipartEncoder(BOUNDARY, transportPadding))
+              .map(encoder)
               .before(() -> wrap(extra != null ? extra : new byte[0]))
               .after(() -> wrap(extra != null ? extra : new byte[0]))
-              .map(new MultipartDecoder(BOUNDARY))
+              .map(decoder)
               .map(
                   bodyPart -> {
+                    bodyParts.add(bodyPart);
                     headers.add(bodyPart.headers());
                     System.out.println(new File(bodyPart.headers().get("Filename")[0]).getName());
 
@@ -146,6 +360,7 @@ class TestMultipart {
 
       checkHeaders(headers);
       compareFiles(files);
+      bodyParts.forEach(checkBodyPart);
     } finally {
       removeFiles(files);
     }
@@ -174,4 +389,517 @@ class TestMultipart {
   void test4() {
     test(1024, null, true);
   }
+
+  @Test
+  @DisplayName("test5")
+  void test5() {
+    final MultipartPool pool = new MultipartPool(1);
+
+    for (int i = 0; i < 2; ++i) {
+      final MultipartDecoder decoder = pool.decoder(BOUNDARY);
+      final MultipartEncoder encoder = pool.encoder(BOUNDARY);
+
+      test(1024, null, encoder, decoder);
+      pool.release(decoder);
+      pool.release(encoder);
+    }
+  }
+
+  @Test
+  @DisplayName("test6")
+  void test6() {
+    test(
+        1024,
+        null,
+        new MultipartEncoder(BOUNDARY),
+        new MultipartDecoder(BOUNDARY)
+            .withDigests(List.of(TestMultipart::sha256), List.of(CRC32C::new)),
+        TestMultipart::checkDigests);
+  }
+
+  @Test
+  @DisplayName("test7")
+  void test7() {
+    test(
+        1024,
+        null,
+        new MultipartEncoder(BOUNDARY).withReadAhead(2, 0x100000),
+        new MultipartDecoder(BOUNDARY));
+  }
+
+  @Test
+  @DisplayName("test8")
+  void test8() {
+    final List<Pair<File, File>> files = files();
+    final List<Path> paths = new ArrayList<>();
+
+    try {
+      join(
+          with(Source.of(files.stream().map(pair -> bodyPart(pair.first, 1024)).toList()))
+              .map(new MultipartEncoder(BOUNDARY))
+              .map(new MultipartDecoder(BOUNDARY))
+              .map(new MultipartFileWriter(TestMultipart::outPath, 0x1000, Sync.NEVER))
+              .map(
+                  path -> {
+                    paths.add(path);
+
+                    return path;
+                  })
+              .get());
+
+      assertEquals(files.size(), paths.size());
+      compareFiles(files);
+    } finally {
+      removeFiles(files);
+    }
+  }
+
+  @Test
+  @DisplayName("test9")
+  void test9() {
+    final List<Pair<File, File>> files = files();
+    final File multipart = new File("/tmp/multipart");
+
+    try {
+      tryToDoRethrow(
+          () -> {
+            try (FileChannel channel = open(multipart.toPath(), CREATE, WRITE)) {
+              join(
+                  with(Source.of(
+                          rangeInclusive(0, files.size() - 1)
+                              .map(i -> bodyPart(files.get(i).first, "part" + i))
+                              .toList()))
+                      .map(new MultipartEncoder(BOUNDARY))
+                      .map(buffer -> write(channel, buffer))
+                      .get());
+            }
+          });
+
+      final MultipartIndex index =
+          tryToGetRethrow(() -> MultipartIndex.index(multipart.toPath(), BOUNDARY)).orElseThrow();
+
+      assertEquals(files.size(), index.parts().size());
+      assertThrows(UnsupportedOperationException.class, () -> index.parts().clear());
+      assertTrue(index.part("unknown").isEmpty());
+      assertArrayEquals(
+          index.headers(2).get("Filename"),
+          index.part("part2").orElseThrow().headers().get("Filename"));
+      assertTrue(index.part("<part1>").isPresent());
+      checkHeaders(
+          index.extract(commonPool(), TestMultipart::writeBody).stream()
+              .map(h -> remove(h, "Content-ID"))
+              .toList());
+      compareFiles(files);
+    } finally {
+      multipart.delete();
+      removeFiles(files);
+    }
+  }
+
+  @Test
+  @DisplayName("test10")
+  void test10() {
+    final ExecutorService executor = newCachedThreadPool(r -> new Thread(r, "offload"));
+    final List<Pair<File, File>> files = files();
+    final Set<String> threads = newKeySet();
+
+    try {
+      join(
+          with(Source.of(files.stream().map(pair -> bodyPart(pair.first, 1024)).toList()))
+              .map(new MultipartEncoder(BOUNDARY))
+              .map(new MultipartDecoder(BOUNDARY).withExecutor(executor, 4))
+              .map(
+                  bodyPart -> {
+                    threads.add(currentThread().getName());
+
+                    return new BodyPart(
+                        bodyPart.headers(),
+                        with(bodyPart.body())
+                            .map(
+                                buffer -> {
+                                  threads.add(currentThread().getName());
+
+                                  return buffer;
+                                })
+                            .get());
+                  })
+              .map(new MultipartFileWriter(TestMultipart::outPath))
+              .get());
+
+      assertEquals(Set.of("offload"), threads);
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> new MultipartDecoder(BOUNDARY).withExecutor(executor, 0));
+      compareFiles(files);
+    } finally {
+      executor.shutdown();
+      removeFiles(files);
+    }
+  }
+
+  @Test
+  @DisplayName("test11")
+  void test11() {
+    test(
+        1024,
+        null,
+        new MultipartEncoder(BOUNDARY),
+        new MultipartDecoder(BOUNDARY).withFlushPolicy(FlushPolicy.depleted()));
+  }
+
+  @Test
+  @DisplayName("test12")
+  void test12() {
+    final List<Pair<File, File>> files = files();
+
+    try {
+      join(
+          with(Source.of(
+                  rangeInclusive(0, files.size() - 1)
+                      .map(
+                          i ->
+                              bodyPart(
+                                  files.get(i).first,
+                                  files.get(i).first.length() + lengthError(i)))
+                      .toList()))
+              .map(new MultipartEncoder(BOUNDARY))
+              .map(new MultipartDecoder(BOUNDARY).withContentLength(true))
+              .map(new MultipartFileWriter(TestMultipart::outPath))
+              .get());
+
+      compareFiles(files);
+    } finally {
+      removeFiles(files);
+    }
+  }
+
+  @Test
+  @DisplayName("test13")
+  void test13() {
+    final String newBoundary = "4b8a0c1e-7d3f-4e21-9a56-0f2d8c7b6e15";
+    final List<Pair<File, File>> files = files();
+    final List<Map<String, String[]>> headers = new ArrayList<>();
+    final ByteArrayOutputStream relayed = new ByteArrayOutputStream();
+
+    try {
+      join(
+          with(Source.of(files.stream().map(pair -> bodyPart(pair.first, 1024)).toList()))
+              .map(new MultipartEncoder(BOUNDARY))
+              .before(() -> wrap("preamble".getBytes(US_ASCII)))
+              .map(
+                  new MultipartRelay(
+                      BOUNDARY, newBoundary, h -> put(h, "Relayed", new String[] {"yes"})))
+              .map(buffer -> append(relayed, buffer))
+              .map(new MultipartDecoder(newBoundary))
+              .map(
+                  bodyPart -> {
+                    assertArrayEquals(new String[] {"yes"}, bodyPart.headers().get("Relayed"));
+                    headers.add(remove(bodyPart.headers(), "Relayed"));
+
+                    return bodyPart;
+                  })
+              .map(new MultipartFileWriter(TestMultipart::outPath))
+              .get());
+
+      assertEquals(files.size(), headers.size());
+      // The input ends right after its close delimiter.
+      assertTrue(relayed.toString(US_ASCII).endsWith("\r\n--" + newBoundary + "--"));
+      checkHeaders(headers);
+      compareFiles(files);
+    } finally {
+      removeFiles(files);
+    }
+  }
+
+  @Test
+  @DisplayName("test14")
+  void test14() {
+    final int bufferSize = 1000;
+    final int readAhead = 2;
+    final long readAheadBytes = 3000;
+    final List<Feed> feeds =
+        List.of(
+            new Feed(10, bufferSize, true),
+            new Feed(10, bufferSize, false),
+            new Feed(10, bufferSize, false),
+            new Feed(10, bufferSize, false));
+    final MultipartEncoder encoder =
+        new MultipartEncoder(BOUNDARY).withReadAhead(readAhead, readAheadBytes);
+    final CompletableFuture<Void> done =
+        runAsync(
+            () ->
+                join(
+                    with(Source.of(feeds.stream().map(f -> new BodyPart(HEADERS, f)).toList()))
+                        .map(encoder)
+                        .get()));
+
+    // The first body stays open, so the next ones can only have been subscribed to early.
+    await(
+        () ->
+            feeds.get(0).emitted == 10 * bufferSize
+                && feeds.get(1).subscriber != null
+                && feeds.get(2).subscriber != null
+                && feeds.get(1).emitted + feeds.get(2).emitted >= readAheadBytes);
+    tryToDoRethrow(() -> sleep(100));
+    assertFalse(feeds.get(0).complete.get());
+    assertNull(feeds.get(3).subscriber);
+    // At most one buffer can be in flight for every body part that is read ahead.
+    assertTrue(
+        feeds.get(1).emitted + feeds.get(2).emitted <= readAheadBytes + readAhead * bufferSize);
+    feeds.get(0).release();
+    done.join();
+    feeds.forEach(
+        f -> {
+          assertTrue(f.complete.get());
+          assertEquals(10 * bufferSize, f.emitted);
+        });
+  }
+
+  @Test
+  @DisplayName("test15")
+  void test15() {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final MultipartDecoder decoder =
+        new MultipartDecoder("B")
+            .withFlushPolicy(FlushPolicy.bytes(0x1000).or(FlushPolicy.demand()));
+    final Feed feed = new Feed(true);
+    final CompletableFuture<Void> done =
+        runAsync(
+            () ->
+                join(
+                    with(feed)
+                        .map(decoder)
+                        .map(
+                            bodyPart -> {
+                              bodyPart.body().subscribe(writableByteChannel(newChannel(body)));
+
+                              return bodyPart;
+                            })
+                        .get()));
+
+    feed.add("\r\n--B\r\nHeader: value\r\n\r\n");
+    feed.add("hello");
+    // The body is still open, so only the flush policy can have emitted the bytes.
+    await(() -> body.size() == 5);
+    feed.add("\r\n--B--");
+    feed.release();
+    done.join();
+    assertEquals("hello", body.toString(US_ASCII));
+  }
+
+  @Test
+  @DisplayName("test16")
+  void test16() {
+    final MultipartEncoder encoder = new MultipartEncoder(BOUNDARY).withReadAhead(1, 0x10000);
+    final List<Feed> feeds = List.of(new Feed(10, 1000, true), new Feed(10, 1000, true));
+    final Collect<ByteBuffer> cancelling = new Collect<>(5);
+
+    with(Source.of(feeds.stream().map(f -> new BodyPart(HEADERS, f)).toList()))
+        .map(encoder)
+        .get()
+        .subscribe(cancelling);
+    cancelling.result.join();
+    // The body that is read ahead may not have been subscribed to yet.
+    await(
+        () ->
+            feeds.get(0).cancelled
+                && feeds.stream().allMatch(f -> f.subscriber == null || f.cancelled));
+    test(1024, null, encoder.reset(BOUNDARY), new MultipartDecoder(BOUNDARY));
+
+    final Feed feed = new Feed(10, 1000, true);
+    final Collect<ByteBuffer> failing = new Collect<>(Long.MAX_VALUE);
+
+    with(failing(new BodyPart(HEADERS, feed)))
+        .map(encoder.reset(BOUNDARY))
+        .get()
+        .subscribe(failing);
+    assertThrows(CompletionException.class, failing.result::join);
+    await(() -> feed.cancelled);
+    test(1024, null, encoder.reset(BOUNDARY), new MultipartDecoder(BOUNDARY));
+  }
+
+  @Test
+  @DisplayName("test17")
+  void test17() {
+    final MultipartDecoder decoder = new MultipartDecoder(BOUNDARY);
+    final Collect<BodyPart> cancelling = new Collect<>(1);
+
+    with(Source.of(multipart("body1", "body2"))).map(decoder).get().subscribe(cancelling);
+    cancelling.result.join();
+    test(1024, null, new MultipartEncoder(BOUNDARY), decoder.reset(BOUNDARY));
+
+    final Collect<BodyPart> failing = new Collect<>(Long.MAX_VALUE);
+
+    with(failing(multipart("body"))).map(decoder.reset(BOUNDARY)).get().subscribe(failing);
+    assertThrows(CompletionException.class, failing.result::join);
+    test(1024, null, new MultipartEncoder(BOUNDARY), decoder.reset(BOUNDARY));
+  }
+
+  @Test
+  @DisplayName("test18")
+  void test18() {
+    final byte[] truncated =
+        ("\r\n--" + BOUNDARY + "\r\nHeader: value\r\n\r\nbody").getBytes(US_ASCII);
+
+    assertTrue(digestsFailure(Source.of(wrap(truncated))) instanceof EOFException);
+    assertEquals("Failing publisher", digestsFailure(failing(wrap(truncated))).getMessage());
+  }
+
+  @Test
+  @DisplayName("test19")
+  void test19() {
+    final Feed feed = new Feed(10, 1000, true);
+    final File file = new File("/tmp/cancelled.out");
+    final Collect<Path> paths = new Collect<>(Long.MAX_VALUE);
+
+    try {
+      with(Source.of(new BodyPart(HEADERS, feed)))
+          .map(new MultipartFileWriter(bodyPart -> file.toPath()))
+          .get()
+          .subscribe(paths);
+      await(() -> feed.emitted == 10000);
+      paths.subscription.cancel();
+      await(() -> feed.cancelled);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  @DisplayName("test20")
+  void test20() {
+    final ExecutorService executor = newCachedThreadPool();
+    final List<Pair<File, File>> files = files();
+
+    try {
+      join(
+          with(Source.of(files.stream().map(pair -> bodyPart(pair.first, 1024)).toList()))
+              .map(new MultipartEncoder(BOUNDARY))
+              .map(new MultipartDecoder(BOUNDARY).withExecutor(executor, 4))
+              .map(
+                  bodyPart -> {
+                    final Collect<ByteBuffer> body = new Collect<>(Long.MAX_VALUE);
+
+                    // The delivery of the body parts waits for the body.
+                    bodyPart.body().subscribe(body);
+                    writeFile(outPath(bodyPart), body.result.orTimeout(10, SECONDS).join());
+
+                    return bodyPart;
+                  })
+              .get());
+
+      compareFiles(files);
+    } finally {
+      executor.shutdown();
+      removeFiles(files);
+    }
+  }
+
+  @Test
+  @DisplayName("test21")
+  void test21() {
+    final BodyRecorder oneBuffer = bodyRecorder(5);
+    final ByteBuffer input = wrap(("hello\r\n--" + BOUNDARY + "--").getBytes(US_ASCII));
+
+    assertEquals(5, oneBuffer.copy(input));
+    assertEquals(0, oneBuffer.copy(input)); // The delimiter is left to the state machine.
+    assertEquals("hello", recorded(oneBuffer));
+
+    final BodyRecorder spanning = bodyRecorder(10);
+
+    assertEquals(5, spanning.copy(wrap("hello".getBytes(US_ASCII))));
+    assertEquals(5, spanning.copy(wrap(("world\r\n--" + BOUNDARY).getBytes(US_ASCII))));
+    assertEquals("helloworld", recorded(spanning));
+  }
+
+  private static class Collect<T> implements Subscriber<T> {
+    private final long cancelAfter;
+    private final CompletableFuture<List<T>> result = new CompletableFuture<>();
+    private final List<T> values = new ArrayList<>();
+    private Subscription subscription;
+
+    private Collect(final long cancelAfter) {
+      this.cancelAfter = cancelAfter;
+    }
+
+    public void onComplete() {
+      result.complete(values);
+    }
+
+    public void onError(final Throwable throwable) {
+      result.completeExceptionally(throwable);
+    }
+
+    public void onNext(final T value) {
+      values.add(value);
+
+      if (values.size() == cancelAfter) {
+        subscription.cancel();
+        result.complete(values);
+      }
+    }
+
+    public void onSubscribe(final Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(Long.MAX_VALUE);
+    }
+  }
+
+  private static class Feed implements Publisher<ByteBuffer>, Subscription {
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final AtomicBoolean complete = new AtomicBoolean();
+    private volatile boolean cancelled;
+    private volatile long emitted;
+    private boolean hold;
+    private long requested;
+    private volatile Subscriber<? super ByteBuffer> subscriber;
+
+    private Feed(final boolean hold) {
+      this.hold = hold;
+    }
+
+    private Feed(final int count, final int bufferSize, final boolean hold) {
+      this(hold);
+      rangeInclusive(1, count).forEach(i -> buffers.addLast(allocate(bufferSize)));
+    }
+
+    private synchronized void add(final String s) {
+      buffers.addLast(wrap(s.getBytes(US_ASCII)));
+      more();
+    }
+
+    public void cancel() {
+      cancelled = true;
+      complete.set(true);
+    }
+
+    private synchronized void more() {
+      while (requested > 0 && !buffers.isEmpty()) {
+        final ByteBuffer buffer = buffers.removeFirst();
+
+        --requested;
+        emitted += buffer.remaining();
+        subscriber.onNext(buffer);
+      }
+
+      if (buffers.isEmpty() && !hold && complete.compareAndSet(false, true)) {
+        subscriber.onComplete();
+      }
+    }
+
+    private synchronized void release() {
+      hold = false;
+      more();
+    }
+
+    public synchronized void request(final long n) {
+      requested += n;
+      more();
+    }
+
+    public void subscribe(final Subscriber<? super ByteBuffer> subscriber) {
+      this.subscriber = subscriber;
+      subscriber.onSubscribe(this);
+    }
+  }
 }